@@ -0,0 +1,329 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.handle;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal pull parser for the JSON documents returned by the DSpace handle
+ * resolver, which are always a top level array of strings (or the literal
+ * <code>null</code>). It reads UTF-8 encoded bytes straight from the stream
+ * and only consumes as much input as the caller asks for, so resolving a
+ * handle stops after the first element without building a JSON tree.
+ *
+ * <p>
+ * Instances are not thread safe and are meant to be used for a single
+ * response only.
+ * </p>
+ */
+final class JsonStringArrayReader
+{
+    private static final int BUFFER_SIZE = 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    // reused for every string we decode
+    private final StringBuilder chars = new StringBuilder();
+
+    private boolean inArray = false;
+    private boolean first = true;
+    private boolean peeked = false;
+
+    JsonStringArrayReader(InputStream in)
+    {
+        this.in = in;
+    }
+
+    /**
+     * Consumes the opening bracket of the top level array.
+     *
+     * @return false if the document is empty or the literal null, true if an
+     *         array was opened.
+     * @exception IOException
+     *                If the stream cannot be read or does not start with an
+     *                array.
+     */
+    boolean beginArray() throws IOException
+    {
+        int c = nextNonWhitespace();
+        if (c == -1)
+        {
+            return false;
+        }
+        if (c == 'n')
+        {
+            expectLiteral("ull");
+            return false;
+        }
+        if (c != '[')
+        {
+            throw syntaxError("Expected '['", c);
+        }
+        inArray = true;
+        return true;
+    }
+
+    /**
+     * Return true if the array opened by {@link #beginArray()} has another
+     * element. Once the closing bracket was read, this returns false.
+     */
+    boolean hasNext() throws IOException
+    {
+        if (peeked)
+        {
+            return true;
+        }
+        if (!inArray)
+        {
+            return false;
+        }
+
+        int c = nextNonWhitespace();
+        if (c == ']')
+        {
+            inArray = false;
+            return false;
+        }
+        if (!first)
+        {
+            if (c != ',')
+            {
+                throw syntaxError("Expected ',' or ']'", c);
+            }
+            c = nextNonWhitespace();
+        }
+        if (c == -1)
+        {
+            throw new EOFException("Unterminated JSON array.");
+        }
+        // we have read the first character of the element, push it back
+        pos--;
+        first = false;
+        peeked = true;
+        return true;
+    }
+
+    /**
+     * Return the next element of the array, or null if the element is the
+     * JSON literal null. Call {@link #hasNext()} first.
+     */
+    String nextString() throws IOException
+    {
+        if (!hasNext())
+        {
+            throw new IOException("No further elements in JSON array.");
+        }
+        peeked = false;
+
+        int c = read();
+        if (c == 'n')
+        {
+            expectLiteral("ull");
+            return null;
+        }
+        if (c != '"')
+        {
+            throw syntaxError("Expected a string", c);
+        }
+        return readString();
+    }
+
+    void close() throws IOException
+    {
+        in.close();
+    }
+
+    private String readString() throws IOException
+    {
+        chars.setLength(0);
+        while (true)
+        {
+            int b = read();
+            if (b == -1)
+            {
+                throw new EOFException("Unterminated JSON string.");
+            }
+            if (b == '"')
+            {
+                return chars.toString();
+            }
+            if (b == '\\')
+            {
+                readEscape();
+            }
+            else if (b < 0x80)
+            {
+                chars.append((char) b);
+            }
+            else
+            {
+                readMultiByte(b);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException
+    {
+        int c = read();
+        switch (c)
+        {
+            case '"':
+            case '\\':
+            case '/':
+                chars.append((char) c);
+                break;
+            case 'b':
+                chars.append('\b');
+                break;
+            case 'f':
+                chars.append('\f');
+                break;
+            case 'n':
+                chars.append('\n');
+                break;
+            case 'r':
+                chars.append('\r');
+                break;
+            case 't':
+                chars.append('\t');
+                break;
+            case 'u':
+                // surrogate pairs arrive as two escapes, one char each
+                int value = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    int digit = Character.digit(read(), 16);
+                    if (digit == -1)
+                    {
+                        throw new IOException("Invalid \\u escape in JSON string.");
+                    }
+                    value = (value << 4) | digit;
+                }
+                chars.append((char) value);
+                break;
+            default:
+                throw syntaxError("Invalid escape sequence", c);
+        }
+    }
+
+    /**
+     * Decode a UTF-8 sequence starting with the given lead byte. Malformed
+     * input, overlong forms and encoded surrogates are replaced by U+FFFD.
+     */
+    private void readMultiByte(int lead) throws IOException
+    {
+        int remaining;
+        int codePoint;
+        // smallest code point that may be encoded with this many bytes
+        int minimum;
+        if ((lead & 0xE0) == 0xC0)
+        {
+            remaining = 1;
+            codePoint = lead & 0x1F;
+            minimum = 0x80;
+        }
+        else if ((lead & 0xF0) == 0xE0)
+        {
+            remaining = 2;
+            codePoint = lead & 0x0F;
+            minimum = 0x800;
+        }
+        else if ((lead & 0xF8) == 0xF0)
+        {
+            remaining = 3;
+            codePoint = lead & 0x07;
+            minimum = 0x10000;
+        }
+        else
+        {
+            chars.append('\uFFFD');
+            return;
+        }
+
+        for (int i = 0; i < remaining; i++)
+        {
+            int b = read();
+            if ((b & 0xC0) != 0x80)
+            {
+                chars.append('\uFFFD');
+                if (b != -1)
+                {
+                    // not a continuation byte, let the caller handle it
+                    pos--;
+                }
+                return;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+
+        if (codePoint >= minimum && Character.isValidCodePoint(codePoint)
+                && (codePoint < 0xD800 || codePoint > 0xDFFF))
+        {
+            chars.appendCodePoint(codePoint);
+        }
+        else
+        {
+            chars.append('\uFFFD');
+        }
+    }
+
+    private void expectLiteral(String rest) throws IOException
+    {
+        for (int i = 0; i < rest.length(); i++)
+        {
+            int c = read();
+            if (c != rest.charAt(i))
+            {
+                throw syntaxError("Expected literal null", c);
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException
+    {
+        int c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+        {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException
+    {
+        if (pos == limit)
+        {
+            int n = in.read(buffer, 0, buffer.length);
+            while (n == 0)
+            {
+                n = in.read(buffer, 0, buffer.length);
+            }
+            if (n == -1)
+            {
+                return -1;
+            }
+            pos = 0;
+            limit = n;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    private IOException syntaxError(String message, int c)
+    {
+        if (c == -1)
+        {
+            return new EOFException(message + " but reached end of input.");
+        }
+        return new IOException(message + " but found '" + (char) c + "'.");
+    }
+}
@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -21,6 +22,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.handle.hdllib.Encoder;
 import net.handle.hdllib.HandleException;
@@ -64,6 +74,18 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
      * while resolving handles, f.e. http://localhost:8080/xmlui/handleresolver.
      */
     private static String PROPERTY_KEY = "dspace.handle.endpoint";
+    /**
+     * Maximum number of DSpace instances queried in parallel while scanning
+     * all handles.
+     */
+    private static String SCAN_THREADS_KEY = "dspace.handle.scan.threads";
+    private static int DEFAULT_SCAN_THREADS = 4;
+    /**
+     * Connect and read timeout in milliseconds for the requests of a scan. A
+     * read that is already blocked cannot be interrupted by HttpURLConnection,
+     * so this also bounds how long a cancelled scan waits for its workers.
+     */
+    private static int SCAN_TIMEOUT = 30000;
     
     /** log4j category */
     private static Logger log = Logger
@@ -72,6 +94,9 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
     // maps prefixes to URLs from DSpace instances
     private static Map<String, String> prefixes;
 
+    // number of DSpace instances queried in parallel by scanHandles
+    private int scanThreads = DEFAULT_SCAN_THREADS;
+
     /**
      * Constructor
      */
@@ -86,6 +111,7 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
 
         // try to find our configuration
         Properties properties = loadProperties(CONFIG_FILE_NAME);
+        loadScanThreads(properties);
 
         // find urls of all configured dspace instances
         for (Enumeration e = properties.propertyNames(); e.hasMoreElements();)
@@ -125,6 +151,7 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
 
         // try to find our configuration
         Properties properties = loadProperties(CONFIG_FILE_NAME);
+        loadScanThreads(properties);
         
         // find urls of all configured dspace instances
         for (Enumeration e = properties.propertyNames(); e.hasMoreElements();)
@@ -243,27 +270,351 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
         }
     }
 
+    // //////////////////////////////////////
+    // Scanning methods
+    // //////////////////////////////////////
+
     /**
-     * HandleStorage interface method - not implemented.
+     * Pass every handle of every known prefix to the callback. The DSpace
+     * instances are queried in parallel (at most
+     * <code>dspace.handle.scan.threads</code> at a time), the prefixes of a
+     * single instance are scanned one after another. Handles are handed to the
+     * callback as they are read from the responses. Calls to the callback are
+     * serialized, so it does not need to be thread safe.
+     * 
+     * <p>
+     * A prefix that cannot be scanned does not stop the scan of the other
+     * prefixes. Once all prefixes were scanned, a HandleException is thrown if
+     * any of them failed, so the caller knows the scan is incomplete. If the
+     * callback throws an exception, the scan is stopped and the exception is
+     * passed on once all running requests have been stopped. The callback is
+     * never called after this method returned.
+     * </p>
+     * 
+     * @param callback
+     *            called once for every handle
+     * @exception HandleException
+     *                If the callback fails, the scan is interrupted or any
+     *                prefix could not be scanned.
      */
     public void scanHandles(ScanCallback callback) throws HandleException
     {
-        // Not implemented
         if (log.isInfoEnabled())
         {
-            log.info("Called scanHandles (not implemented)");
+            log.info("Called scanHandles");
+        }
+
+        final Map<String, List<String>> instances = groupPrefixesByEndpoint();
+        if (instances.isEmpty())
+        {
+            return;
+        }
+
+        final HandleScan scan = new HandleScan(callback);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(scanThreads, instances.size()));
+        CompletionService<List<String>> completion =
+                new ExecutorCompletionService<List<String>>(executor);
+        Map<Future<List<String>>, String> tasks = new HashMap<Future<List<String>>, String>();
+        try
+        {
+            for (final Map.Entry<String, List<String>> entry : instances.entrySet())
+            {
+                tasks.put(completion.submit(new Callable<List<String>>()
+                {
+                    public List<String> call() throws Exception
+                    {
+                        return scan.scanEndpoint(entry.getKey(), entry.getValue());
+                    }
+                }), entry.getKey());
+            }
+
+            List<String> failed = new ArrayList<String>();
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                Future<List<String>> future = completion.take();
+                try
+                {
+                    failed.addAll(future.get());
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof CallbackException)
+                    {
+                        // the callback gave up, no point in going on
+                        Throwable cause = e.getCause().getCause();
+                        if (cause instanceof HandleException)
+                        {
+                            throw (HandleException) cause;
+                        }
+                        throw (RuntimeException) cause;
+                    }
+
+                    String endpoint = tasks.get(future);
+                    log.error("Unexpected error while scanning handles at " + endpoint
+                            + ", continuing with other DSpace instances.", e.getCause());
+                    failed.addAll(instances.get(endpoint));
+                }
+            }
+
+            if (!failed.isEmpty())
+            {
+                throw new HandleException(HandleException.INTERNAL_ERROR,
+                        "Unable to scan handles of prefix(es) "
+                        + StringUtils.join(failed, ", ") + ".");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR,
+                    "Interrupted while scanning handles.");
+        }
+        finally
+        {
+            // stops the remaining requests if we leave early, does nothing
+            // if all of them are done already
+            scan.cancel();
+            executor.shutdownNow();
+            awaitTermination(executor);
         }
     }
 
     /**
-     * HandleStorage interface method - not implemented.
+     * Pass the naming authority handle (0.NA/prefix) of every known prefix to
+     * the callback.
+     * 
+     * @param callback
+     *            called once for every prefix
+     * @exception HandleException
+     *                If the callback fails.
      */
     public void scanNAs(ScanCallback callback) throws HandleException
     {
-        // Not implemented
         if (log.isInfoEnabled())
         {
-            log.info("Called scanNAs (not implemented)");
+            log.info("Called scanNAs");
+        }
+
+        for (String prefix : new ArrayList<String>(this.prefixes.keySet()))
+        {
+            callback.scanHandle(Util.encodeString("0.NA/" + prefix));
+        }
+    }
+
+    // maps endpoints of DSpace instances to the prefixes they serve
+    private Map<String, List<String>> groupPrefixesByEndpoint()
+    {
+        Map<String, List<String>> instances = new HashMap<String, List<String>>();
+        for (Map.Entry<String, String> entry : this.prefixes.entrySet())
+        {
+            List<String> instancePrefixes = instances.get(entry.getValue());
+            if (instancePrefixes == null)
+            {
+                instancePrefixes = new ArrayList<String>();
+                instances.put(entry.getValue(), instancePrefixes);
+            }
+            instancePrefixes.add(entry.getKey());
+        }
+        return instances;
+    }
+
+    // waits for the workers to finish, even if we are interrupted meanwhile
+    private void awaitTermination(ExecutorService executor)
+    {
+        boolean interrupted = false;
+        while (!executor.isTerminated())
+        {
+            try
+            {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * State of a single run of scanHandles, shared by all of its workers.
+     * Once cancelled, the workers stop reading and the callback is not called
+     * anymore.
+     */
+    private static class HandleScan
+    {
+        private final ScanCallback callback;
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final List<HttpURLConnection> openConnections =
+                new LinkedList<HttpURLConnection>();
+
+        HandleScan(ScanCallback callback)
+        {
+            this.callback = callback;
+        }
+
+        /**
+         * Stop the scan and disconnect all open requests. Requests still
+         * waiting for a response fail right away, a read that is already
+         * blocked ends at the latest after SCAN_TIMEOUT.
+         */
+        void cancel()
+        {
+            cancelled.set(true);
+
+            List<HttpURLConnection> connections;
+            synchronized (openConnections)
+            {
+                connections = new ArrayList<HttpURLConnection>(openConnections);
+                openConnections.clear();
+            }
+            for (HttpURLConnection connection : connections)
+            {
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Scan all prefixes of one DSpace instance, one after another.
+         * 
+         * @return the prefixes that could not be scanned
+         */
+        List<String> scanEndpoint(String endpoint, List<String> endpointPrefixes)
+                throws CallbackException
+        {
+            List<String> failed = new ArrayList<String>();
+            for (String prefix : endpointPrefixes)
+            {
+                if (cancelled.get())
+                {
+                    break;
+                }
+                try
+                {
+                    scanPrefix(endpoint, prefix);
+                }
+                catch (CallbackException e)
+                {
+                    // stop the other workers right away
+                    cancel();
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    if (cancelled.get())
+                    {
+                        // our response was closed by cancel()
+                        break;
+                    }
+                    log.error("Unable to scan handles of prefix " + prefix + " at "
+                            + endpoint + ", continuing with other prefixes.", e);
+                    failed.add(prefix);
+                }
+            }
+            return failed;
+        }
+
+        // streams all handles of one prefix from /listhandles into the callback
+        private void scanPrefix(String endpoint, String prefix)
+                throws IOException, CallbackException
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Scanning handles of prefix " + prefix + " at " + endpoint);
+            }
+
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL(endpoint + "/listhandles/" + prefix).openConnection();
+            connection.setConnectTimeout(SCAN_TIMEOUT);
+            connection.setReadTimeout(SCAN_TIMEOUT);
+            synchronized (openConnections)
+            {
+                if (cancelled.get())
+                {
+                    return;
+                }
+                openConnections.add(connection);
+            }
+
+            JsonStringArrayReader jsonReader = null;
+            int count = 0;
+            try
+            {
+                jsonReader = new JsonStringArrayReader(connection.getInputStream());
+                if (jsonReader.beginArray())
+                {
+                    while (!cancelled.get() && jsonReader.hasNext())
+                    {
+                        String handle = jsonReader.nextString();
+                        if (handle == null)
+                        {
+                            continue;
+                        }
+                        byte[] theHandle = Util.encodeString(handle);
+                        synchronized (callback)
+                        {
+                            if (cancelled.get())
+                            {
+                                return;
+                            }
+                            try
+                            {
+                                callback.scanHandle(theHandle);
+                            }
+                            catch (HandleException e)
+                            {
+                                throw new CallbackException(e);
+                            }
+                            catch (RuntimeException e)
+                            {
+                                throw new CallbackException(e);
+                            }
+                        }
+                        count++;
+                    }
+                }
+            }
+            finally
+            {
+                synchronized (openConnections)
+                {
+                    openConnections.remove(connection);
+                }
+                if (jsonReader != null)
+                {
+                    try
+                    {
+                        jsonReader.close();
+                    }
+                    catch (IOException e)
+                    {
+                        log.error(e.getMessage(), e);
+                    }
+                }
+            }
+
+            if (log.isInfoEnabled() && !cancelled.get())
+            {
+                log.info("Scanned " + count + " handles of prefix " + prefix + " at " + endpoint);
+            }
+        }
+    }
+
+    /**
+     * Wraps an exception thrown by the ScanCallback, to tell it apart from
+     * failures to talk to DSpace.
+     */
+    private static class CallbackException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        CallbackException(Exception cause)
+        {
+            super(cause);
         }
     }
 
@@ -340,7 +691,7 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
             log.info("Called getRemoteDSpaceURL("+handle+").");
         }
         
-        InputStreamReader jsonStreamReader = null;
+        JsonStringArrayReader jsonReader = null;
         String url = null;
         try
         {
@@ -356,14 +707,16 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
             }
 
             String jsonurl = endpoint + "/resolve/" + handle;
-            jsonStreamReader = new InputStreamReader(
-                    new URL(jsonurl).openStream(), "UTF-8");
-            JsonParser parser = new JsonParser();
-            JsonElement jsonElement = parser.parse(jsonStreamReader);
+            jsonReader = new JsonStringArrayReader(new URL(jsonurl).openStream());
 
-            if (jsonElement == null || jsonElement.isJsonNull()
-                    || jsonElement.getAsJsonArray().size() == 0
-                    || jsonElement.getAsJsonArray().get(0).isJsonNull())
+            // we only need the first element, don't read the rest of the response
+            if (jsonReader.beginArray() && jsonReader.hasNext())
+            {
+                url = jsonReader.nextString();
+            }
+
+            // an empty response, null, [] and [null] all mean "not found"
+            if (url == null)
             {
                 if (log.isDebugEnabled())
                 {
@@ -371,8 +724,6 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
                 }
                 throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST);
             }
-
-            url = jsonElement.getAsJsonArray().get(0).getAsString();
         }
         catch (Exception e)
         {
@@ -386,11 +737,11 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
         }
         finally
         {
-            if (jsonStreamReader != null)
+            if (jsonReader != null)
             {
                 try
                 {
-                    jsonStreamReader.close();
+                    jsonReader.close();
                 }
                 catch (IOException e)
                 {
@@ -574,6 +925,31 @@ public class MultiRemoteDSpaceRepositoryHandlePlugin implements HandleStorage
         return props;
     }
     
+    private void loadScanThreads(Properties properties)
+    {
+        String value = properties.getProperty(SCAN_THREADS_KEY);
+        if (StringUtils.isBlank(value))
+        {
+            return;
+        }
+
+        try
+        {
+            int threads = Integer.parseInt(value.trim());
+            if (threads > 0)
+            {
+                scanThreads = threads;
+                return;
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // handled below
+        }
+        log.warn(SCAN_THREADS_KEY + " must be a positive number, found \"" + value
+                + "\", using " + DEFAULT_SCAN_THREADS + ".");
+    }
+
     private InputStream findConfigFile(String filename)
     {
         String rootResourceFilename = "/" + filename;